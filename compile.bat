@@ -28,6 +28,7 @@
 @del *.class  2>nul
 @del src_cpp\net_tomahawk_XFileDialog.h 2>nul
 @del src_java\net\tomahawk\*.class 2>nul
+@del test\net\tomahawk\*.class 2>nul
 
 @del *~ 2>nul
 @del src_cpp\*~  2>nul
@@ -41,6 +42,15 @@
 @javac src_java\net\tomahawk\*.java
 @javac -h src_cpp src_java\net\tomahawk\*.java
 
+@echo *
+@echo Run allocation tests
+@javac -cp src_java test\net\tomahawk\*.java
+@java -cp src_java;test net.tomahawk.AllocationTest
+@if errorlevel 1 (
+@echo *** Allocation tests failed, stopping
+@exit /b 1
+)
+
 @echo *
 @echo Package jar
 @cd src_java
@@ -0,0 +1,324 @@
+package net.tomahawk;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * ArchiveIndex is a read-only index of the entry names within a ZIP or JAR
+ * archive, used by XFileDialog to let the user step into archives. The index
+ * is built by reading only the archive's central directory, once, so opening
+ * even a very large archive never reads or inflates any entry data.
+ *
+ * Entry names are kept in a single sorted array, so the entries within any
+ * virtual directory form a contiguous range that can be found by binary
+ * search. The listing for each virtual directory is computed only when first
+ * requested, then remembered for the most recently used directories.
+ *
+ * Indexes are cached by archive path, and an index is rebuilt only if the
+ * archive's modification time has changed since it was indexed.
+ */
+public final class ArchiveIndex
+{
+  private static final int EOCD_SIG = 0x06054b50;
+  private static final int EOCD_LEN = 22;
+  private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+  private static final int ZIP64_LOCATOR_LEN = 20;
+  private static final int ZIP64_EOCD_SIG = 0x06064b50;
+  private static final int ZIP64_EOCD_LEN = 56;
+  private static final int CEN_SIG = 0x02014b50;
+  private static final int CEN_LEN = 46;
+
+  private static final int CACHE_SIZE = 8;
+  private static final int LISTINGS_SIZE = 64;
+  private static final Map<Path, ArchiveIndex> cache =
+      new LinkedHashMap<Path, ArchiveIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, ArchiveIndex> e) {
+          return size() > CACHE_SIZE;
+        }
+      };
+
+  private final Path archive;
+  private final long mtime;
+  private final String[] names; // sorted, directories end with '/'
+  private final Map<String, String[]> listings = // protected by this
+      new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> e) {
+          return size() > LISTINGS_SIZE;
+        }
+      };
+
+  private ArchiveIndex(Path archive, long mtime, String[] names) {
+    this.archive = archive;
+    this.mtime = mtime;
+    this.names = names;
+  }
+
+  /**
+   * Check whether a file looks like a ZIP or JAR archive, based on its name.
+   */
+  public static boolean isArchive(File file) {
+    return isArchiveName(file.getName()) && file.isFile();
+  }
+
+  /**
+   * Check whether a file name has a ZIP or JAR extension.
+   */
+  public static boolean isArchiveName(String name) {
+    int n = name.length();
+    return name.regionMatches(true, n-4, ".zip", 0, 4)
+        || name.regionMatches(true, n-4, ".jar", 0, 4);
+  }
+
+  /**
+   * Get an index for the given archive, either from the cache or by reading the
+   * archive's central directory.
+   */
+  public static ArchiveIndex get(Path archive) throws IOException {
+    archive = archive.toAbsolutePath().normalize();
+    long mtime = Files.getLastModifiedTime(archive).toMillis();
+    synchronized (cache) {
+      ArchiveIndex index = cache.get(archive);
+      if (index != null && index.mtime == mtime)
+        return index;
+    }
+    ArchiveIndex index = new ArchiveIndex(archive, mtime, readCentralDirectory(archive));
+    synchronized (cache) {
+      cache.put(archive, index);
+    }
+    return index;
+  }
+
+  // Get the archive file for this index.
+  public Path getArchive() { return archive; }
+
+  // Get the number of entries in the archive.
+  public int size() { return names.length; }
+
+  /**
+   * List the contents of a virtual directory within the archive.
+   * @param dir - The directory, e.g. "" for the top level, or "docs/img/".
+   * Directory names other than "" must end with "/".
+   * @param filters - Filters for the names of non-directory entries. An entry
+   * is listed if any filter accepts it, or if no filters are given.
+   * Directories are always listed. Only ExtensionBasedFilter objects are used,
+   * as they match on names alone: XFileDialog.Filter objects by acceptName(),
+   * and others by the "*.ext" patterns in their getWindowsDescription(). Other
+   * filters expect a real file, e.g. to check its contents or attributes, so
+   * they are ignored.
+   * @return the names of files and directories within dir, relative to dir.
+   * Directory names end with "/".
+   */
+  public String[] list(String dir, FilenameFilter... filters) {
+    String[] all;
+    synchronized (this) {
+      all = listings.get(dir);
+      if (all == null) {
+        all = children(dir);
+        listings.put(dir, all);
+      }
+    }
+    ArrayList<Predicate<String>> usable = new ArrayList<>();
+    for (FilenameFilter f : filters) {
+      if (f instanceof XFileDialog.Filter)
+        usable.add(((XFileDialog.Filter)f)::acceptName);
+      else if (f instanceof XFileDialog.ExtensionBasedFilter)
+        usable.add(patterns(((XFileDialog.ExtensionBasedFilter)f).getWindowsDescription()));
+    }
+    if (usable.isEmpty())
+      return all.clone();
+    ArrayList<String> ret = new ArrayList<>();
+    for (String name : all) {
+      if (name.endsWith("/") || accept(usable, name))
+        ret.add(name);
+    }
+    return ret.toArray(new String[ret.size()]);
+  }
+
+  /**
+   * Open an entry within the archive. This opens a new zip FileSystem, which
+   * the caller should close using getFileSystem().close() when finished.
+   * @param entry - The full name of the entry, e.g. "docs/img/logo.png".
+   */
+  public Path open(String entry) throws IOException {
+    FileSystem fs = FileSystems.newFileSystem(archive);
+    return fs.getPath("/" + entry);
+  }
+
+  private static boolean accept(ArrayList<Predicate<String>> filters, String name) {
+    for (Predicate<String> f : filters) {
+      if (f.test(name))
+        return true;
+    }
+    return false;
+  }
+
+  // Match names against the patterns of a Windows filter description, e.g.
+  // "Image Files (*.png, *.jpg)|*.png;*.jpg". Only "*.ext", "*.*", and "*"
+  // patterns are recognized, case insensitively, as with Filter.
+  private static Predicate<String> patterns(String win) {
+    if (win == null)
+      return name -> false;
+    ArrayList<String> exts = new ArrayList<>();
+    for (String p : win.substring(win.lastIndexOf('|') + 1).split(";")) {
+      p = p.trim();
+      if (p.equals("*") || p.equals("*.*"))
+        return name -> true;
+      if (p.startsWith("*.") && p.length() > 2)
+        exts.add(p.substring(2));
+    }
+    return name -> {
+      int n = name.length();
+      for (String ext : exts) {
+        int k = ext.length();
+        if (n > k && name.charAt(n-k-1) == '.' && name.regionMatches(true, n-k, ext, 0, k))
+          return true;
+      }
+      return false;
+    };
+  }
+
+  // Compute the immediate children of dir. Whenever a subdirectory is found,
+  // the entire range of entries within it is skipped using binary search, so
+  // the cost depends on the number of children rather than descendants.
+  private String[] children(String dir) {
+    ArrayList<String> ret = new ArrayList<>();
+    int end = dir.isEmpty() ? names.length : lowerBound(successor(dir));
+    int i = lowerBound(dir);
+    while (i < end) {
+      String rest = names[i].substring(dir.length());
+      int slash = rest.indexOf('/');
+      if (rest.isEmpty() || slash == 0) {
+        i++; // the directory itself, or an empty path component
+      } else if (slash < 0) {
+        ret.add(rest);
+        i++;
+      } else {
+        String sub = rest.substring(0, slash+1);
+        ret.add(sub);
+        i = lowerBound(successor(dir + sub));
+      }
+    }
+    return ret.toArray(new String[ret.size()]);
+  }
+
+  // The smallest string greater than every string that begins with the given
+  // directory prefix, which always ends with "/".
+  private static String successor(String dir) {
+    return dir.substring(0, dir.length()-1) + (char)('/' + 1);
+  }
+
+  // Index of the first name not less than key.
+  private int lowerBound(String key) {
+    int lo = 0, hi = names.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (names[mid].compareTo(key) < 0)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+
+  private static String[] readCentralDirectory(Path archive) throws IOException {
+    try (FileChannel ch = FileChannel.open(archive, StandardOpenOption.READ)) {
+      long size = ch.size();
+
+      // The end of central directory record is at the very end of the file,
+      // followed only by an optional comment of up to 65535 bytes.
+      int tailLen = (int)Math.min(size, EOCD_LEN + 0xffff);
+      ByteBuffer tail = read(ch, size - tailLen, tailLen);
+      int eocd = -1;
+      for (int p = tailLen - EOCD_LEN; p >= 0; p--) {
+        if (tail.getInt(p) == EOCD_SIG
+            && p + EOCD_LEN + (tail.getShort(p+20) & 0xffff) == tailLen) {
+          eocd = p;
+          break;
+        }
+      }
+      if (eocd < 0)
+        throw new IOException("not a zip archive: " + archive);
+
+      long count = tail.getShort(eocd+10) & 0xffff;
+      long cenSize = tail.getInt(eocd+12) & 0xffffffffL;
+      long cenOffset = tail.getInt(eocd+16) & 0xffffffffL;
+      if (count == 0xffff || cenSize == 0xffffffffL || cenOffset == 0xffffffffL) {
+        long locator = size - tailLen + eocd - ZIP64_LOCATOR_LEN;
+        if (locator >= 0) {
+          ByteBuffer loc = read(ch, locator, ZIP64_LOCATOR_LEN);
+          if (loc.getInt(0) == ZIP64_LOCATOR_SIG) {
+            long z64 = loc.getLong(8);
+            if (z64 < 0 || z64 > locator - ZIP64_EOCD_LEN)
+              throw new IOException("corrupt zip64 archive: " + archive);
+            ByteBuffer z = read(ch, z64, ZIP64_EOCD_LEN);
+            if (z.getInt(0) != ZIP64_EOCD_SIG)
+              throw new IOException("corrupt zip64 archive: " + archive);
+            count = z.getLong(32);
+            cenSize = z.getLong(40);
+            cenOffset = z.getLong(48);
+          }
+        }
+      }
+      if (count < 0 || cenSize < 0 || cenOffset < 0 || cenOffset > size - cenSize
+          || count > cenSize / CEN_LEN)
+        throw new IOException("corrupt zip archive: " + archive);
+      if (cenSize > Integer.MAX_VALUE)
+        throw new IOException("unsupported zip archive: " + archive);
+
+      ByteBuffer cen = ch.map(FileChannel.MapMode.READ_ONLY, cenOffset, cenSize)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      String[] names = new String[(int)count];
+      byte[] buf = new byte[256];
+      int n = 0, p = 0;
+      while (n < count && p + CEN_LEN <= cenSize) {
+        if (cen.getInt(p) != CEN_SIG)
+          throw new IOException("corrupt zip central directory: " + archive);
+        int nameLen = cen.getShort(p+28) & 0xffff;
+        int extraLen = cen.getShort(p+30) & 0xffff;
+        int commentLen = cen.getShort(p+32) & 0xffff;
+        long next = (long)p + CEN_LEN + nameLen + extraLen + commentLen;
+        if (next > cenSize)
+          throw new IOException("corrupt zip central directory: " + archive);
+        if (nameLen > buf.length)
+          buf = new byte[nameLen];
+        cen.get(p + CEN_LEN, buf, 0, nameLen);
+        int start = 0;
+        while (start < nameLen && buf[start] == '/')
+          start++;
+        names[n++] = new String(buf, start, nameLen - start, StandardCharsets.UTF_8);
+        p = (int)next;
+      }
+      if (n < names.length)
+        names = Arrays.copyOf(names, n);
+      Arrays.sort(names);
+      return names;
+    }
+  }
+
+  private static ByteBuffer read(FileChannel ch, long pos, int len) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+    while (buf.hasRemaining()) {
+      if (ch.read(buf, pos + buf.position()) < 0)
+        throw new IOException("unexpected end of file");
+    }
+    return buf;
+  }
+
+}
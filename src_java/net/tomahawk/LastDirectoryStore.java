@@ -0,0 +1,250 @@
+package net.tomahawk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LastDirectoryStore remembers the last directory used by each dialog context,
+ * where a context is any caller-chosen string, e.g. "export-images". Used with
+ * XFileDialog.setContext(), the result directory of each dialog is saved
+ * automatically and used as the initial directory next time.
+ *
+ * The store is a small memory-mapped file with a fixed number of slots, so
+ * lookups and updates take microseconds, and several JVMs can share the same
+ * file at the same time. When all slots are in use, the least recently used
+ * context is replaced.
+ *
+ * Updates are serialized within a JVM by synchronizing on a monitor shared by
+ * all stores opened on the same file, and across JVMs by a file lock. The
+ * shared monitor also ensures that two stores on the same file in one JVM
+ * never request overlapping file locks. Lookups take no lock at all: each slot
+ * has a sequence number that is odd while the slot is being written, and a
+ * reader retries if the sequence number was odd or changed while it read the
+ * slot.
+ *
+ * File layout, all little-endian:
+ *   header: magic, version, capacity, slot size (ints), clock (long)
+ *   slots:  sequence, hash (ints), last use (long), key length, dir length
+ *           (shorts), key bytes, dir bytes (UTF-8)
+ */
+public final class LastDirectoryStore implements Closeable
+{
+  private static final int MAGIC = 0x58464453; // "XFDS"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 64;
+  private static final int CLOCK = 16;
+
+  private static final int SLOT_SIZE = 1024;
+  private static final int SEQ = 0;
+  private static final int HASH = 4;
+  private static final int STAMP = 8;
+  private static final int KEY_LEN = 16;
+  private static final int DIR_LEN = 18;
+  private static final int KEY = 20;
+  private static final int DIR = 256;
+  private static final int MAX_KEY = DIR - KEY;
+  private static final int MAX_DIR = SLOT_SIZE - DIR;
+
+  // A slot that stays mid-update this long was likely abandoned by a writer
+  // that died, so readers give up on it rather than spin forever.
+  private static final int MAX_SPINS = 100000;
+
+  private static final VarHandle INT =
+      MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final VarHandle LONG =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  // One monitor per store file, shared by all stores on that file in this JVM.
+  private static final ConcurrentHashMap<Path, Object> monitors = new ConcurrentHashMap<>();
+
+  private final FileChannel ch;
+  private final MappedByteBuffer buf;
+  private final int capacity;
+  private final Object monitor;
+
+  private LastDirectoryStore(FileChannel ch, MappedByteBuffer buf, int capacity,
+      Object monitor) {
+    this.ch = ch;
+    this.monitor = monitor;
+    this.buf = buf;
+    this.buf.order(ByteOrder.LITTLE_ENDIAN);
+    this.capacity = capacity;
+  }
+
+  /**
+   * Open a store, creating it if necessary.
+   * @param file - the file backing the store.
+   * @param capacity - the number of contexts to remember, used only when the
+   * file is first created. An existing file keeps its original capacity.
+   */
+  public static LastDirectoryStore open(Path file, int capacity) throws IOException {
+    if (capacity < 1)
+      throw new IllegalArgumentException("capacity must be at least 1");
+    Path dir = file.toAbsolutePath().getParent();
+    if (dir != null)
+      Files.createDirectories(dir);
+    FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      Object monitor = monitors.computeIfAbsent(file.toRealPath(), p -> new Object());
+      synchronized (monitor) {
+        FileLock lock = ch.lock();
+        try {
+          return open(file, ch, capacity, monitor);
+        } finally {
+          lock.release();
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      ch.close();
+      throw e;
+    }
+  }
+
+  // Initialize or validate the file, while holding its lock.
+  private static LastDirectoryStore open(Path file, FileChannel ch, int capacity,
+      Object monitor) throws IOException {
+    if (ch.size() < HEADER_SIZE) {
+      long size = HEADER_SIZE + (long)capacity * SLOT_SIZE;
+      MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      INT.set(buf, 4, VERSION);
+      INT.set(buf, 8, capacity);
+      INT.set(buf, 12, SLOT_SIZE);
+      INT.setVolatile(buf, 0, MAGIC);
+      return new LastDirectoryStore(ch, buf, capacity, monitor);
+    }
+    MappedByteBuffer head = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+    if ((int)INT.get(head, 0) != MAGIC || (int)INT.get(head, 4) != VERSION
+        || (int)INT.get(head, 12) != SLOT_SIZE)
+      throw new IOException("not a directory store: " + file);
+    capacity = (int)INT.get(head, 8);
+    long size = HEADER_SIZE + (long)capacity * SLOT_SIZE;
+    if (capacity < 1 || ch.size() < size)
+      throw new IOException("corrupt directory store: " + file);
+    MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    return new LastDirectoryStore(ch, buf, capacity, monitor);
+  }
+
+  // Get the number of contexts this store can remember.
+  public int getCapacity() { return capacity; }
+
+  /**
+   * Get the last directory saved for a context, or null if there is none.
+   */
+  public String get(String context) {
+    byte[] key = context.getBytes(StandardCharsets.UTF_8);
+    if (key.length > MAX_KEY)
+      return null;
+    int hash = hash(key);
+    byte[] tmp = new byte[MAX_KEY];
+    for (int i = 0; i < capacity; i++) {
+      int slot = HEADER_SIZE + i * SLOT_SIZE;
+      for (int spins = 0; spins < MAX_SPINS; spins++) {
+        int seq = (int)INT.getVolatile(buf, slot + SEQ);
+        if ((seq & 1) != 0) {
+          Thread.onSpinWait();
+          continue;
+        }
+        String dir = null;
+        if ((int)INT.get(buf, slot + HASH) == hash) {
+          int keyLen = Math.min(buf.getShort(slot + KEY_LEN) & 0xffff, MAX_KEY);
+          int dirLen = Math.min(buf.getShort(slot + DIR_LEN) & 0xffff, MAX_DIR);
+          buf.get(slot + KEY, tmp, 0, keyLen);
+          if (Arrays.equals(tmp, 0, keyLen, key, 0, key.length)) {
+            byte[] d = new byte[dirLen];
+            buf.get(slot + DIR, d);
+            dir = new String(d, StandardCharsets.UTF_8);
+          }
+        }
+        VarHandle.acquireFence();
+        if ((int)INT.getVolatile(buf, slot + SEQ) != seq)
+          continue; // slot changed while reading, try again
+        if (dir == null)
+          break;
+        LONG.setVolatile(buf, slot + STAMP, tick());
+        return dir;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Save the directory for a context, replacing the least recently used context
+   * if the store is full.
+   * @return false if the context or directory name is too long to be saved.
+   */
+  public boolean put(String context, String dir) throws IOException {
+    byte[] key = context.getBytes(StandardCharsets.UTF_8);
+    byte[] val = dir.getBytes(StandardCharsets.UTF_8);
+    if (key.length > MAX_KEY || val.length > MAX_DIR)
+      return false;
+    int hash = hash(key);
+    byte[] tmp = new byte[MAX_KEY];
+    synchronized (monitor) {
+      FileLock lock = ch.lock();
+      try {
+        int victim = -1;
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < capacity; i++) {
+          int slot = HEADER_SIZE + i * SLOT_SIZE;
+          int h = (int)INT.get(buf, slot + HASH);
+          if (h == hash) {
+            int keyLen = Math.min(buf.getShort(slot + KEY_LEN) & 0xffff, MAX_KEY);
+            buf.get(slot + KEY, tmp, 0, keyLen);
+            if (Arrays.equals(tmp, 0, keyLen, key, 0, key.length)) {
+              victim = slot;
+              break;
+            }
+          }
+          long stamp = h == 0 ? Long.MIN_VALUE : (long)LONG.get(buf, slot + STAMP);
+          if (stamp < oldest) {
+            oldest = stamp;
+            victim = slot;
+          }
+        }
+        int seq = (int)INT.get(buf, victim + SEQ);
+        INT.setVolatile(buf, victim + SEQ, seq + 1);
+        VarHandle.storeStoreFence(); // payload stores must follow the odd seq
+        INT.set(buf, victim + HASH, hash);
+        buf.putShort(victim + KEY_LEN, (short)key.length);
+        buf.putShort(victim + DIR_LEN, (short)val.length);
+        buf.put(victim + KEY, key);
+        buf.put(victim + DIR, val);
+        LONG.set(buf, victim + STAMP, tick());
+        INT.setVolatile(buf, victim + SEQ, seq + 2);
+      } finally {
+        lock.release();
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    ch.close();
+  }
+
+  // Shared logical clock for least-recently-used ordering across JVMs.
+  private long tick() {
+    return (long)LONG.getAndAdd(buf, CLOCK, 1L) + 1;
+  }
+
+  // Nonzero hash of a key, as zero marks an empty slot.
+  private static int hash(byte[] key) {
+    int h = Arrays.hashCode(key);
+    return h != 0 ? h : 1;
+  }
+
+}
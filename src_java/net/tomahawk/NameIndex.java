@@ -0,0 +1,190 @@
+package net.tomahawk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * NameIndex is a snapshot of the file names in a directory, used by
+ * XFileDialog in SAVE mode to check for name conflicts and to suggest free
+ * names, such as "report (2).txt", without touching the file system again.
+ * The directory is listed once, and each query is answered by binary search.
+ *
+ * Names are indexed both exactly and case-folded, since a name that differs
+ * only in case from an existing file conflicts with it on Windows and MacOS,
+ * and is confusing everywhere else. The index is not updated if the directory
+ * changes after it was built.
+ */
+public final class NameIndex
+{
+  private final File dir;
+  private final String[] names; // sorted
+  private final String[] folded; // sorted case-folded names
+  private final String[] originals; // originals[i] is the name for folded[i]
+
+  private NameIndex(File dir, String[] names) {
+    this.dir = dir;
+    Arrays.sort(names);
+    this.names = names;
+    Integer[] order = new Integer[names.length];
+    String[] f = new String[names.length];
+    for (int i = 0; i < names.length; i++) {
+      order[i] = i;
+      f[i] = fold(names[i]);
+    }
+    Arrays.sort(order, (a, b) -> f[a].compareTo(f[b]));
+    folded = new String[names.length];
+    originals = new String[names.length];
+    for (int i = 0; i < names.length; i++) {
+      folded[i] = f[order[i]];
+      originals[i] = names[order[i]];
+    }
+  }
+
+  /**
+   * Build an index by listing the given directory.
+   */
+  public static NameIndex build(File dir) throws IOException {
+    String[] names = dir.list();
+    if (names == null)
+      throw new IOException("could not list directory " + dir);
+    return new NameIndex(dir, names);
+  }
+
+  // Get the directory for this index.
+  public File getDirectory() { return dir; }
+
+  // Get the number of names in this index.
+  public int size() { return names.length; }
+
+  /**
+   * Check whether a file or directory with exactly the given name exists.
+   */
+  public boolean exists(String name) {
+    return Arrays.binarySearch(names, name) >= 0;
+  }
+
+  /**
+   * Check whether a file or directory exists whose name is the same as the
+   * given name, ignoring case.
+   */
+  public boolean existsIgnoreCase(String name) {
+    return Arrays.binarySearch(folded, fold(name)) >= 0;
+  }
+
+  /**
+   * Find an existing name that is the same as the given name ignoring case,
+   * but differs in case, or null if there is none. If several exist, one of
+   * them is returned.
+   */
+  public String findCaseConflict(String name) {
+    String key = fold(name);
+    int i = lowerBound(folded, key);
+    for (; i < folded.length && folded[i].equals(key); i++) {
+      if (!originals[i].equals(name))
+        return originals[i];
+    }
+    return null;
+  }
+
+  /**
+   * Return the given name if it is free, otherwise the first free name of the
+   * form "name (2).ext", "name (3).ext", etc. Names are compared ignoring case.
+   * If the given name already has the form "name (k).ext", numbering
+   * continues from k+1. The existing numbered names are found with a single
+   * binary search, as they are contiguous in case-folded order, so the cost
+   * depends on how many there are, not on how many are tried.
+   */
+  public String nextFreeName(String name) {
+    if (!existsIgnoreCase(name))
+      return name;
+    int dot = name.lastIndexOf('.');
+    String base = dot > 0 ? name.substring(0, dot) : name;
+    String ext = dot > 0 ? name.substring(dot) : "";
+    int n = 2;
+    int open = base.lastIndexOf(" (");
+    if (open > 0 && base.endsWith(")")) {
+      try {
+        int k = Integer.parseInt(base.substring(open+2, base.length()-1));
+        if (k > 0) {
+          base = base.substring(0, open);
+          n = k + 1;
+        }
+      } catch (NumberFormatException e) {
+        // not a numbered name, keep the whole base
+      }
+    }
+    String prefix = fold(base + " (");
+    String suffix = fold(")" + ext);
+    int[] used = new int[8];
+    int count = 0;
+    int end = folded.length;
+    for (int i = lowerBound(folded, prefix); i < end && folded[i].startsWith(prefix); i++) {
+      String f = folded[i];
+      int k = number(f, prefix.length(), f.length() - suffix.length());
+      if (k < n || !f.endsWith(suffix))
+        continue;
+      if (count == used.length)
+        used = Arrays.copyOf(used, count * 2);
+      used[count++] = k;
+    }
+    Arrays.sort(used, 0, count);
+    for (int i = 0; i < count && used[i] <= n; i++) {
+      if (used[i] == n)
+        n++;
+    }
+    // Case folding of the whole name can differ from folding its parts, in
+    // rare cases, so check the result.
+    String candidate = base + " (" + n + ")" + ext;
+    while (existsIgnoreCase(candidate))
+      candidate = base + " (" + (++n) + ")" + ext;
+    return candidate;
+  }
+
+  // Parse s[start, end) as a positive number without leading zeros, or return
+  // -1 if it isn't one.
+  private static int number(String s, int start, int end) {
+    if (end <= start || end - start > 9 || s.charAt(start) == '0')
+      return -1;
+    int k = 0;
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9')
+        return -1;
+      k = k * 10 + (c - '0');
+    }
+    return k;
+  }
+
+  /**
+   * Return up to max existing names that start with the given prefix, ignoring
+   * case, in case-folded order. This is intended for name completion.
+   */
+  public String[] complete(String prefix, int max) {
+    String key = fold(prefix);
+    int start = lowerBound(folded, key);
+    int end = start;
+    while (end < folded.length && end - start < max && folded[end].startsWith(key))
+      end++;
+    return Arrays.copyOfRange(originals, start, end);
+  }
+
+  private static String fold(String name) {
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  // Index of the first element of a not less than key.
+  private static int lowerBound(String[] a, String key) {
+    int lo = 0, hi = a.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (a[mid].compareTo(key) < 0)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+
+}
@@ -2,12 +2,46 @@ package net.tomahawk;
 
 import java.awt.Component;
 import java.awt.Dialog;
+import java.awt.Dimension;
 import java.awt.FileDialog;
 import java.awt.Frame;
 import java.awt.Window;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.CollationKey;
+import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.swing.JList;
+import javax.swing.JOptionPane;
+import javax.swing.JScrollPane;
+import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
 
 /**
@@ -36,6 +70,12 @@ public class XFileDialog
   public static final int LOAD = FileDialog.LOAD;
   public static final int SAVE = FileDialog.SAVE;
 
+  // Orderings for getFiles(int) and Selection.setOrder().
+  public static final int ORDER_NONE = 0; // as returned by the platform
+  public static final int ORDER_NATURAL = 1; // by name, numbers by value
+  public static final int ORDER_COLLATED = 2; // by name, using locale collation
+  public static final int ORDER_MTIME = 3; // by modification time, oldest first
+
   // parent is used for constructing the Windows CDialog, and sometimes for
   // constructing an AWT dialog when the native Windows dialog is not available.
   // In some situations, parent is also used for positioning the dialog.
@@ -53,10 +93,21 @@ public class XFileDialog
   private String initialFile, resultFile;
   private File[] resultFiles = new File[0];
   private boolean attemptWindowsJNI = true;
+  private long readaheadBudget; // 0 = readahead disabled
+  private int readaheadThreads;
+  private Selection selection;
+  private boolean archiveBrowsing;
+  private Path archiveEntry;
+  private String context;
+  private boolean nameIndexing;
+  private File nameIndexDir;
+  private FutureTask<NameIndex> nameIndex;
 
   // 0 = initializing, 1 = displaying, 2 = closed
   private int state;
 
+  private static final FilenameFilter[] NO_FILTERS = new FilenameFilter[0];
+
   private static int traceLevel = 0; // for debugging
 
   private static Object lock = new Object();
@@ -64,6 +115,8 @@ public class XFileDialog
   private static boolean hasWindowsJNI; // protected by lock during initialization
   private static boolean isWindows; // protected by lock during initialization
   private static boolean isMacOS; // protected by lock during initialization
+  private static LastDirectoryStore directoryStore; // protected by lock
+  private static boolean directoryStoreOpened; // protected by lock
 
   /**
    * Set debug tracing level. Use 0 to disable all debug printing. Higher
@@ -136,6 +189,38 @@ public class XFileDialog
     return hasWindowsJNI;
   }
 
+  /**
+   * Set the store used to remember the last directory for each dialog context.
+   * If this is never called, a store in the user's home directory is opened
+   * the first time a dialog with a context is shown. Use null to disable
+   * remembering directories.
+   */
+  public static void setDirectoryStore(LastDirectoryStore store) {
+    synchronized (lock) {
+      directoryStore = store;
+      directoryStoreOpened = true;
+    }
+  }
+
+  /**
+   * Get the store used to remember the last directory for each dialog context,
+   * opening the default store if needed, or null if none is available.
+   */
+  public static LastDirectoryStore getDirectoryStore() {
+    synchronized (lock) {
+      if (directoryStoreOpened)
+        return directoryStore;
+      directoryStoreOpened = true;
+      Path file = Paths.get(System.getProperty("user.home"), ".xfiledialog", "lastdirs");
+      try {
+        directoryStore = LastDirectoryStore.open(file, 64);
+      } catch (IOException | RuntimeException e) {
+        trace(1, "Could not open directory store " + file + ": " + e.getMessage());
+      }
+      return directoryStore;
+    }
+  }
+
   /**
    * Construct an XFileDialog using the given parent.
    */
@@ -181,6 +266,11 @@ public class XFileDialog
   // Set the initial directory for this load/save dialog.
   public void setDirectory(String dir) { initialDir = dir; }
 
+  // Set the context for this load/save dialog, e.g. "export-images". The result
+  // directory is remembered for each context, and used as the initial
+  // directory next time if no directory is set using setDirectory().
+  public void setContext(String context) { this.context = context; }
+
   // Set the initial file for this load/save dialog.
   public void setFile(String file) { initialFile = file; }
 
@@ -229,17 +319,48 @@ public class XFileDialog
     filters.clear();
   }
 
-  // Get list that determines acceptable file names.
+  // Get list that determines acceptable file names. Allocation budget: one
+  // array of the list's size, or nothing if the list is empty.
   public FilenameFilter[] getFilenameFilters() {
-    FilenameFilter[] arr = new FilenameFilter[filters.size()];
-    for (int i = 0; i < arr.length; i++)
-      arr[i] = filters.get(i);
-    return arr;
+    if (filters.isEmpty())
+      return NO_FILTERS;
+    return filters.toArray(new FilenameFilter[filters.size()]);
   }
 
   // Does nothing, but present for compatibility with java.awt.FileDialog.
   public void addNotify() { }
 
+  /**
+   * Enable or disable background readahead of selected files in LOAD mode.
+   * When enabled, as soon as the selection is known, the selected files are read
+   * in the background so their contents are in the OS page cache by the time
+   * the caller opens them. Readahead is owned by the Selection returned from
+   * getSelection(), and is cancelled once that Selection is no longer
+   * reachable.
+   * @param budget - the maximum total number of bytes to read ahead, across all
+   * selected files. Use 0 to disable readahead, which is the default.
+   * @param maxThreads - the maximum number of files to read concurrently.
+   */
+  public void setReadahead(long budget, int maxThreads) {
+    if (budget < 0)
+      throw new IllegalArgumentException("budget must not be negative");
+    if (maxThreads < 1)
+      throw new IllegalArgumentException("maxThreads must be at least 1");
+    readaheadBudget = budget;
+    readaheadThreads = maxThreads;
+  }
+
+  // Enable or disable building a name index of the initial directory in the
+  // background as soon as a SAVE dialog is shown, so getNameIndex() is ready
+  // when it returns. Disabled by default, since listing a large directory is
+  // wasted work if the caller never calls getNameIndex().
+  public void setNameIndexing(boolean enable) { nameIndexing = enable; }
+
+  // Enable or disable stepping into ZIP and JAR archives in LOAD mode. When
+  // enabled and the user selects a single archive, a second dialog lets the
+  // user choose an entry within it, which is available from getArchiveEntry().
+  public void setArchiveBrowsing(boolean enable) { archiveBrowsing = enable; }
+
   // Enable or disable windows JNI.
   public void attemptNativeWindows(boolean enable) {
     attemptWindowsJNI = enable;
@@ -259,6 +380,18 @@ public class XFileDialog
 
     state = 1;
 
+    LastDirectoryStore store = context != null ? getDirectoryStore() : null;
+    if (store != null && initialDir == null) {
+      String dir = store.get(context);
+      if (dir != null && new File(dir).isDirectory()) {
+        trace(2, "Using last directory for " + context + ": " + dir);
+        initialDir = dir;
+      }
+    }
+
+    if (nameIndexing && mode == SAVE)
+      prepareNameIndex(currentDirectory());
+
     if (hasWindowsJNI && attemptWindowsJNI) {
 
       String defaultExtension = null;
@@ -284,7 +417,7 @@ public class XFileDialog
           title,
           mode == LOAD,
           multiSelection,
-          ExtensionBasedFilter.getWindowsDescription(getFilenameFilters()),
+          windowsFilterDescription(),
           defaultExtension,
           initialDir,
           initialFile);
@@ -316,8 +449,15 @@ public class XFileDialog
         dlg.setDirectory(initialDir);
       if (initialFile != null)
         dlg.setFile(initialFile);
-      if (filters.size() > 0)
-        dlg.setFilenameFilter(new MultiFilter(getFilenameFilters()));
+      if (filters.size() > 0) {
+        File dir = new File(initialDir != null ? initialDir : System.getProperty("user.dir"));
+        for (FilenameFilter f : filters) {
+          if (f instanceof CachingFilter)
+            ((CachingFilter)f).prefetch(dir);
+        }
+        dlg.setFilenameFilter(new MultiFilter(getFilenameFilters(),
+              archiveBrowsing && mode == LOAD));
+      }
 
       // Note: AWT on MacOS seems to center the dialog on the screen, regardless
       // of whether parent is null or non-null. This seems typical for MacOS UI,
@@ -353,6 +493,23 @@ public class XFileDialog
       resultDir = dlg.getDirectory();
     }
 
+    if (store != null && resultDir != null) {
+      try {
+        if (!store.put(context, resultDir))
+          trace(2, "Could not remember last directory for " + context + ": name too long");
+      } catch (IOException e) {
+        trace(1, "Could not remember last directory for " + context + ": " + e.getMessage());
+      }
+    }
+
+    if (archiveBrowsing && mode == LOAD && resultFiles.length == 1
+        && ArchiveIndex.isArchive(resultFiles[0]))
+      browseArchive(resultFiles[0]);
+
+    Readahead readahead = null;
+    if (mode == LOAD && readaheadBudget > 0 && resultFiles.length > 0)
+      readahead = new Readahead(resultFiles.clone(), readaheadBudget, readaheadThreads);
+    selection = new Selection(resultFiles.clone(), readahead);
   }
 
   // Get result directory, if any, after setVisible(true), or original directory
@@ -368,13 +525,192 @@ public class XFileDialog
   }
 
   // Get result array of zero or more result files, if any, after
-  // setVisible(true), or empty array if called before then.
+  // setVisible(true), or empty array if called before then. Allocation budget:
+  // one array of the result's size, or nothing if the result is empty.
   public File[] getFiles() {
     if (resultFiles.length == 0)
       return resultFiles;
-    File[] ret = new File[resultFiles.length];
-    for (int i = 0; i < resultFiles.length; i++)
-      ret[i] = resultFiles[i];
+    return resultFiles.clone();
+  }
+
+  // Get the filter description for the native Windows dialog. When archive
+  // browsing is enabled, ZIP and JAR archives are added to every filter so the
+  // user can select them regardless of which filter is chosen.
+  private String windowsFilterDescription() {
+    String win = ExtensionBasedFilter.getWindowsDescription(getFilenameFilters());
+    if (win == null || !archiveBrowsing || mode != LOAD)
+      return win;
+    String[] parts = win.split("\\|");
+    StringBuilder sb = new StringBuilder(win.length() + 16 * parts.length);
+    for (int i = 0; i + 1 < parts.length; i += 2)
+      sb.append(parts[i]).append('|').append(parts[i+1]).append(";*.zip;*.jar|");
+    return sb.append('|').toString();
+  }
+
+  // Get the selection made by the user after setVisible(true), or null if
+  // called before then. The selection holds the result files along with any
+  // background readahead of them, and offers memory-mapped access to them.
+  public Selection getSelection() {
+    return selection;
+  }
+
+  // Get the archive entry chosen by the user, if archive browsing is enabled
+  // and the user selected an entry within an archive, otherwise null. The entry
+  // is a Path on a newly opened zip FileSystem, which the caller should close
+  // using getFileSystem().close() when finished.
+  public Path getArchiveEntry() {
+    return archiveEntry;
+  }
+
+  // Let the user step through the virtual directories of an archive and choose
+  // an entry. If the user cancels, getArchiveEntry() remains null, but the
+  // archive itself is still the result file.
+  private void browseArchive(File file) {
+    ArchiveIndex index;
+    try {
+      index = ArchiveIndex.get(file.toPath());
+    } catch (IOException e) {
+      trace(1, "Could not read archive " + file + ": " + e.getMessage());
+      return;
+    }
+    trace(2, "Browsing archive " + file + " with " + index.size() + " entries");
+    FilenameFilter[] f = getFilenameFilters();
+    Component owner = relative != null ? relative : parent;
+    String dir = "";
+    while (true) {
+      String[] children = index.list(dir, f);
+      String[] items = children;
+      if (!dir.isEmpty()) {
+        items = new String[children.length + 1];
+        items[0] = "../";
+        System.arraycopy(children, 0, items, 1, children.length);
+      }
+      JList<String> list = new JList<>(items);
+      list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+      list.addMouseListener(new MouseAdapter() {
+        @Override
+        public void mouseClicked(MouseEvent e) {
+          JOptionPane pane = (JOptionPane)SwingUtilities.getAncestorOfClass(
+              JOptionPane.class, list);
+          if (e.getClickCount() == 2 && pane != null && list.getSelectedValue() != null)
+            pane.setValue(JOptionPane.OK_OPTION);
+        }
+      });
+      JScrollPane scroll = new JScrollPane(list);
+      scroll.setPreferredSize(new Dimension(500, 400));
+      int ret = JOptionPane.showConfirmDialog(owner, scroll,
+          file.getName() + "/" + dir, JOptionPane.OK_CANCEL_OPTION,
+          JOptionPane.PLAIN_MESSAGE);
+      String sel = list.getSelectedValue();
+      if (ret != JOptionPane.OK_OPTION || sel == null)
+        return;
+      if (sel.equals("../")) {
+        dir = dir.substring(0, dir.lastIndexOf('/', dir.length()-2) + 1);
+      } else if (sel.endsWith("/")) {
+        dir += sel;
+      } else {
+        try {
+          archiveEntry = index.open(dir + sel);
+        } catch (IOException e) {
+          trace(1, "Could not open archive " + file + ": " + e.getMessage());
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Get an index of the names in the current directory, i.e. getDirectory(), for
+   * checking name conflicts and suggesting free names when saving. If enabled
+   * with setNameIndexing(true), the index is built in the background as soon
+   * as a SAVE dialog is shown, otherwise it is built on the first call. The
+   * index is rebuilt only if the directory changes, e.g. if the user chose a
+   * different directory. Returns null if the dialog was cancelled or the
+   * directory can't be listed.
+   */
+  public NameIndex getNameIndex() {
+    File dir = currentDirectory();
+    if (dir == null)
+      return null;
+    prepareNameIndex(dir);
+    try {
+      return nameIndex.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      trace(1, "Could not index " + nameIndexDir + ": " + e.getCause().getMessage());
+      return null;
+    }
+  }
+
+  // The directory the dialog starts in, or the result directory once closed,
+  // or null if the dialog was cancelled.
+  private File currentDirectory() {
+    String dir = getDirectory();
+    if (dir == null && state == 2)
+      return null;
+    return new File(dir != null ? dir : System.getProperty("user.dir")).getAbsoluteFile();
+  }
+
+  // Start building a name index for dir in the background, unless one for the
+  // same directory was already started.
+  private void prepareNameIndex(File dir) {
+    if (nameIndex != null && dir.equals(nameIndexDir))
+      return;
+    nameIndexDir = dir;
+    nameIndex = new FutureTask<>(() -> NameIndex.build(dir));
+    Thread t = new Thread(nameIndex, "XFileDialog-index");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Get result array of zero or more result files, as with getFiles(), sorted
+   * using the given order. This is the same as getSelection().getFiles(order),
+   * so each order is computed at most once per dialog.
+   * @param order - One of ORDER_NONE, ORDER_NATURAL, ORDER_COLLATED, or
+   * ORDER_MTIME, as described for Selection.setOrder().
+   */
+  public File[] getFiles(int order) {
+    checkOrder(order);
+    return selection != null ? selection.getFiles(order) : getFiles();
+  }
+
+  private static void checkOrder(int order) {
+    if (order < ORDER_NONE || order > ORDER_MTIME)
+      throw new IllegalArgumentException("unrecognized order " + order);
+  }
+
+  // Sort files in the given order, other than ORDER_NONE. Sort keys are derived
+  // once per file (a numeric-aware key, a CollationKey, or a modification
+  // time), then sorted in parallel for large selections. Ties are broken by
+  // file name, then by full path.
+  private static File[] sortFiles(File[] files, int order, Collator collator) {
+    SortEntry[] entries = new SortEntry[files.length];
+    for (int i = 0; i < files.length; i++) {
+      SortEntry e = new SortEntry(files[i]);
+      if (order == ORDER_NATURAL)
+        e.text = SortEntry.naturalKey(e.name);
+      else if (order == ORDER_COLLATED)
+        e.collated = collator.getCollationKey(e.name);
+      else
+        e.mtime = files[i].lastModified();
+      entries[i] = e;
+    }
+    Comparator<SortEntry> cmp;
+    if (order == ORDER_NATURAL)
+      cmp = (a, b) -> a.text.compareTo(b.text);
+    else if (order == ORDER_COLLATED)
+      cmp = (a, b) -> a.collated.compareTo(b.collated);
+    else
+      cmp = (a, b) -> Long.compare(a.mtime, b.mtime);
+    cmp = cmp.thenComparing((a, b) -> a.name.compareTo(b.name))
+        .thenComparing((a, b) -> a.file.compareTo(b.file));
+    Arrays.parallelSort(entries, cmp);
+    File[] ret = new File[entries.length];
+    for (int i = 0; i < entries.length; i++)
+      ret[i] = entries[i].file;
     return ret;
   }
 
@@ -426,16 +762,21 @@ public class XFileDialog
      *
      * If the list is empty or does not contain any ExtensionBasedFilter
      * objects, null is returned instead.
+     *
+     * Allocation budget: one builder and the result string, in addition to
+     * whatever each filter's getWindowsDescription() allocates.
      */ 
     public static String getWindowsDescription(FilenameFilter... filters) 
     {
-      String win = "";
+      StringBuilder win = null;
       for (FilenameFilter f : filters) {
         if (!(f instanceof ExtensionBasedFilter))
           continue;
-        win += ((ExtensionBasedFilter)f).getWindowsDescription() + "|";
+        if (win == null)
+          win = new StringBuilder(128);
+        win.append(((ExtensionBasedFilter)f).getWindowsDescription()).append('|');
       }
-      return win.length() > 0 ? win + "|" : null;
+      return win != null ? win.append('|').toString() : null;
     }
 
   } // end of ExtensionBasedFilter
@@ -448,6 +789,13 @@ public class XFileDialog
     protected String name;
     protected ArrayList<String> extensions;
 
+    // Lower-case copies of the extensions, for getWindowsDescription().
+    private final String[] windowsExtensions;
+
+    // Whether a subclass overrides accept(File) or getDescription(), in which
+    // case the faster paths below defer to the overriding methods.
+    private final boolean customAccept, customDescription;
+
     /**
      * Construct a Filter that accepts files with one of the given extensions,
      * or any directory.
@@ -481,6 +829,20 @@ public class XFileDialog
       }
       if (extensions.size() == 0)
         extensions.add("*");
+      windowsExtensions = new String[extensions.size()];
+      for (int i = 0; i < windowsExtensions.length; i++)
+        windowsExtensions[i] = extensions.get(i).toLowerCase();
+
+      customAccept = overrides("accept", File.class);
+      customDescription = overrides("getDescription");
+    }
+
+    private boolean overrides(String method, Class<?>... params) {
+      try {
+        return getClass().getMethod(method, params).getDeclaringClass() != Filter.class;
+      } catch (NoSuchMethodException e) {
+        return false;
+      }
     }
 
     /**
@@ -495,37 +857,55 @@ public class XFileDialog
      * "Image Files (*.png, *.jpg, *.jpeg)".
      */
     public String getDescription() {
-      String description = getName() + " (*." + extensions.get(0);
+      return appendDescription(new StringBuilder(64)).toString();
+    }
+
+    private StringBuilder appendDescription(StringBuilder sb) {
+      sb.append(getName()).append(" (*.").append(extensions.get(0));
       for (int i = 1; i < extensions.size(); i++)
-        description += ", *." + extensions.get(i);
-      description += ")"; 
-      return description;
+        sb.append(", *.").append(extensions.get(i));
+      return sb.append(')');
     }
 
     /**
      * Return a description of this filter suitable for use by the native
      * Windows file load/save dialog, for example,
      * "Image Files (*.png, *.jpg, *.jpeg)|*.png;*.jpg;*.jpeg"
+     *
+     * Allocation budget: one builder and the result string.
      */
     @Override
     public String getWindowsDescription() {
-      String win = getDescription() + "|";
-      win += "*."+extensions.get(0).toLowerCase();
-      for (int i = 1; i < extensions.size(); i++)
-        win += ";*." + extensions.get(i).toLowerCase();
-      return win;
+      StringBuilder win = new StringBuilder(128);
+      if (customDescription)
+        win.append(getDescription());
+      else
+        appendDescription(win);
+      win.append("|*.").append(windowsExtensions[0]);
+      for (int i = 1; i < windowsExtensions.length; i++)
+        win.append(";*.").append(windowsExtensions[i]);
+      return win.toString();
     }
 
     /**
      * Check if a given directory/file pair matches one of the allowed
      * extensions.
+     *
+     * Allocation budget: nothing when the name matches, otherwise one File to
+     * check whether the name is a directory. If a subclass overrides
+     * accept(File), a File is always created and passed to it.
+     *
      * @param dir - The directory in which the file was found.
      * @param name - The name of the file.
      * @return true iff the name matches one fo the allowed extensions.
      */
     @Override
     public boolean accept(File dir, String name) {
-      return name == null || name.length() == 0 || accept(new File(dir, name));
+      if (name == null || name.length() == 0)
+        return true;
+      if (customAccept)
+        return accept(new File(dir, name));
+      return acceptName(name) || new File(dir, name).isDirectory();
     }
 
     /**
@@ -539,9 +919,26 @@ public class XFileDialog
         return false;
       if (path.isDirectory())
         return true;
-      String lname = path.getName().toLowerCase();
-      for (String ext : extensions) {
-        if (ext.equals("*") || lname.endsWith("."+ext.toLowerCase()))
+      return acceptName(path.getName());
+    }
+
+    /**
+     * Check if a file name matches one of the allowed extensions, without
+     * consulting the file system, e.g. for entries within an archive.
+     *
+     * Allocation budget: nothing.
+     *
+     * @param name - The name of the file.
+     * @return true iff the name matches one fo the allowed extensions.
+     */
+    public boolean acceptName(String name) {
+      int n = name.length();
+      for (int i = 0; i < extensions.size(); i++) {
+        String ext = extensions.get(i);
+        int k = ext.length();
+        if (ext.equals("*"))
+          return true;
+        if (n > k && name.charAt(n-k-1) == '.' && name.regionMatches(true, n-k, ext, 0, k))
           return true;
       }
       return false;
@@ -549,16 +946,538 @@ public class XFileDialog
 
   } // end of Filter
 
+  /**
+   * CachingFilter wraps an expensive FilenameFilter, such as one that opens each
+   * file or queries an index, so that the repeated calls made by the toolkit on
+   * every refresh and redraw do not repeat the work. Each result is cached by
+   * file path, file identity, and modification time, in a bounded
+   * least-recently-used cache, so a file that is replaced or modified is
+   * evaluated again.
+   *
+   * When the dialog targets a directory, or when a name in a directory other
+   * than the most recently prefetched one is checked, all entries of that
+   * directory are evaluated in parallel in the background, on a small shared
+   * pool of daemon threads. Any other name not in the cache is likewise queued
+   * for evaluation. Meanwhile, accept() returns a configurable default for
+   * entries not yet evaluated, so it never blocks on the wrapped filter, which
+   * must therefore be safe to call from multiple threads.
+   *
+   * Like other filters that are not ExtensionBasedFilter objects, CachingFilter
+   * is ignored by the native Windows load/save dialog.
+   */
+  public static class CachingFilter implements FilenameFilter
+  {
+    private static final ExecutorService executor = newExecutor();
+
+    private final FilenameFilter filter;
+    private final boolean pendingResult;
+    private final Map<Key, Boolean> cache; // protected by itself
+    private File current; // protected by cache
+    private int generation; // protected by cache, incremented by each prefetch
+    private boolean prefetching; // protected by cache
+    private HashMap<Key, Boolean> pinned = new HashMap<>(); // protected by cache
+    private final Set<Key> pendingKeys = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Construct a CachingFilter with room for 4096 results, which accepts
+     * entries that are still pending evaluation.
+     */
+    public CachingFilter(FilenameFilter filter) {
+      this(filter, 4096, true);
+    }
+
+    /**
+     * Construct a CachingFilter.
+     * @param filter - the filter that does the actual work.
+     * @param capacity - the maximum number of results to remember for
+     * directories other than the one most recently prefetched. Results for
+     * that directory are all kept, however many entries it has, so that a
+     * large directory can't evict its own results.
+     * @param pendingResult - the result to return for entries still pending
+     * evaluation in the background.
+     */
+    public CachingFilter(FilenameFilter filter, int capacity, boolean pendingResult) {
+      if (filter == null)
+        throw new NullPointerException("filter must not be null");
+      if (capacity < 1)
+        throw new IllegalArgumentException("capacity must be at least 1");
+      this.filter = filter;
+      this.pendingResult = pendingResult;
+      this.cache = new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> e) {
+          return size() > capacity;
+        }
+      };
+    }
+
+    // Shared pool for evaluating filters, so blocking filter I/O never runs on
+    // the toolkit thread or the common ForkJoinPool.
+    private static ExecutorService newExecutor() {
+      AtomicInteger count = new AtomicInteger();
+      int n = Math.max(2, Runtime.getRuntime().availableProcessors());
+      return Executors.newFixedThreadPool(n, r -> {
+        Thread t = new Thread(r, "XFileDialog-filter-" + count.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+      });
+    }
+
+    /**
+     * Return the filter that does the actual work.
+     */
+    public FilenameFilter getFilter() {
+      return filter;
+    }
+
+    /**
+     * Start evaluating all entries of a directory in the background, unless
+     * that directory is already being evaluated. Results for this directory
+     * are kept until another directory is prefetched, and any evaluation still
+     * queued for an earlier prefetch is skipped, so leaving a large directory
+     * does not hold up the next one.
+     */
+    public void prefetch(File dir) {
+      File d = dir.getAbsoluteFile();
+      int gen;
+      synchronized (cache) {
+        if (prefetching && d.equals(current))
+          return;
+        if (!d.equals(current)) {
+          cache.putAll(pinned);
+          pinned = new HashMap<>();
+          current = d;
+        }
+        gen = ++generation;
+        prefetching = true;
+      }
+      executor.execute(() -> {
+        String[] names = isGeneration(gen) ? d.list() : null;
+        if (names == null || names.length == 0) {
+          finished(gen);
+          return;
+        }
+        trace(3, "Evaluating filter for " + names.length + " entries of " + d);
+        AtomicInteger remaining = new AtomicInteger(names.length);
+        for (String name : names) {
+          if (!isGeneration(gen))
+            return; // superseded, don't queue the rest
+          executor.execute(() -> {
+            try {
+              if (!isGeneration(gen))
+                return;
+              Key key = Key.of(new File(d, name));
+              if (pendingKeys.add(key))
+                evaluate(d, name, key);
+            } finally {
+              if (remaining.decrementAndGet() == 0)
+                finished(gen);
+            }
+          });
+        }
+      });
+    }
+
+    // Check whether gen is the most recent prefetch.
+    private boolean isGeneration(int gen) {
+      synchronized (cache) {
+        return gen == generation;
+      }
+    }
+
+    // Note that the prefetch for gen is done, unless it was superseded.
+    private void finished(int gen) {
+      synchronized (cache) {
+        if (gen == generation)
+          prefetching = false;
+      }
+    }
+
+    /**
+     * Check a name using the cached result, if there is one. Otherwise, the
+     * name is queued for evaluation in the background and the pending result
+     * is returned, so the caller never waits for the wrapped filter.
+     */
+    @Override
+    public boolean accept(File dir, String name) {
+      File file = new File(dir, name);
+      Key key = Key.of(file);
+      File d = dir != null ? dir.getAbsoluteFile() : null;
+      Boolean ret;
+      boolean isCurrent, loading;
+      synchronized (cache) {
+        ret = pinned.get(key);
+        if (ret == null)
+          ret = cache.get(key);
+        isCurrent = d == null || d.equals(current);
+        loading = prefetching;
+      }
+      if (ret != null)
+        return ret;
+      if (!isCurrent) {
+        prefetch(d);
+        return pendingResult;
+      }
+      if (d != null && loading)
+        return pendingResult;
+      if (pendingKeys.add(key))
+        executor.execute(() -> evaluate(d, name, key));
+      return pendingResult;
+    }
+
+    // Evaluate one entry, whose key has already been added to pendingKeys. If
+    // the filter throws, the pending result is cached, so the failure is not
+    // repeated on every redraw, but only once the file changes.
+    private void evaluate(File dir, String name, Key key) {
+      try {
+        synchronized (cache) {
+          if (pinned.containsKey(key) || cache.containsKey(key))
+            return;
+        }
+        boolean ok;
+        try {
+          ok = filter.accept(dir, name);
+        } catch (RuntimeException e) {
+          trace(2, "Filter failed for " + name + ": " + e);
+          ok = pendingResult;
+        }
+        synchronized (cache) {
+          if (dir != null && dir.equals(current))
+            pinned.put(key, ok);
+          else
+            cache.put(key, ok);
+        }
+      } finally {
+        pendingKeys.remove(key);
+      }
+    }
+
+    // Cache key, identifying a file by path, file system identity (e.g. inode),
+    // and modification time.
+    private static final class Key {
+      private final String path;
+      private final Object id;
+      private final long mtime;
+
+      private Key(String path, Object id, long mtime) {
+        this.path = path;
+        this.id = id;
+        this.mtime = mtime;
+      }
+
+      // If the file's attributes can't be read, e.g. for a broken link or an
+      // inaccessible file, the key identifies the file by path alone.
+      private static Key of(File file) {
+        try {
+          BasicFileAttributes a = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+          return new Key(file.getAbsolutePath(), a.fileKey(), a.lastModifiedTime().toMillis());
+        } catch (IOException | InvalidPathException e) {
+          return new Key(file.getAbsolutePath(), null, Long.MIN_VALUE);
+        }
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        if (!(o instanceof Key))
+          return false;
+        Key k = (Key)o;
+        return mtime == k.mtime && path.equals(k.path) && Objects.equals(id, k.id);
+      }
+
+      @Override
+      public int hashCode() {
+        return path.hashCode() * 31 + Long.hashCode(mtime);
+      }
+    }
+
+  } // end of CachingFilter
+
+  /**
+   * SortEntry holds a file along with its precomputed sort key, so keys are
+   * derived only once per file rather than once per comparison.
+   */
+  private static final class SortEntry
+  {
+    private final File file;
+    private final String name;
+    private String text;
+    private CollationKey collated;
+    private long mtime;
+
+    private SortEntry(File file) {
+      this.file = file;
+      this.name = file.getName();
+    }
+
+    // Compute a key that orders names case insensitively, with each run of
+    // digits ordered by numeric value. Each run is encoded as '0', then a
+    // character holding the run's length without leading zeros, then those
+    // digits. The leading '0' makes a run compare against any other character
+    // exactly as its first digit would, so "img.png" still sorts before
+    // "img10.png", while two runs compare by length first, then by digits, so
+    // "img2" sorts before "img10". Runs longer than Character.MAX_VALUE, far
+    // beyond any file name, compare by their first digits.
+    private static String naturalKey(String name) {
+      StringBuilder sb = new StringBuilder(name.length() + 8);
+      int n = name.length();
+      for (int i = 0; i < n; ) {
+        char c = name.charAt(i);
+        if (c < '0' || c > '9') {
+          sb.append(Character.toLowerCase(c));
+          i++;
+          continue;
+        }
+        int start = i;
+        while (i < n && name.charAt(i) >= '0' && name.charAt(i) <= '9')
+          i++;
+        while (start < i-1 && name.charAt(start) == '0')
+          start++;
+        int len = Math.min(i - start, Character.MAX_VALUE);
+        sb.append('0').append((char)len).append(name, start, start + len);
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * Selection holds the files chosen by the user, along with any background
+   * readahead of those files started by setReadahead(). Readahead continues as
+   * long as the Selection is reachable, even if the XFileDialog that produced
+   * it is not, and is cancelled once the Selection itself is no longer
+   * reachable. Callers that want readahead to continue should therefore keep
+   * the Selection, rather than only the array returned by getFiles().
+   *
+   * The files can be put in a chosen order with setOrder(), which applies to
+   * both getFiles() and mapFile(), so indices remain consistent between them.
+   * Each order is computed at most once per Selection. Like XFileDialog, a
+   * Selection is not intended to be used by multiple threads concurrently.
+   */
+  public static final class Selection
+  {
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private final File[] files; // as returned by the platform
+    private final File[][] sorted = new File[ORDER_MTIME+1][]; // indexed by order
+    private final Readahead readahead; // null if readahead is disabled
+    private Collator collator; // null for the default locale's Collator
+    private int order = ORDER_NONE;
+
+    private Selection(File[] files, Readahead readahead) {
+      this.files = files;
+      this.readahead = readahead;
+      sorted[ORDER_NONE] = files;
+      if (readahead != null) {
+        cleaner.register(this, readahead::cancel);
+        readahead.start();
+      }
+    }
+
+    // Get the number of selected files.
+    public int size() {
+      return files.length;
+    }
+
+    // Get array of zero or more selected files, in the order set by setOrder().
+    public File[] getFiles() {
+      return getFiles(order);
+    }
+
+    /**
+     * Get array of zero or more selected files, sorted using the given order,
+     * without changing the order used by getFiles() and mapFile().
+     * @param order - One of the orders accepted by setOrder().
+     */
+    public File[] getFiles(int order) {
+      checkOrder(order);
+      File[] ret = sorted(order);
+      return ret.length == 0 ? ret : ret.clone();
+    }
+
+    /**
+     * Set the order of the files returned by getFiles(), and so the meaning of
+     * the index given to mapFile().
+     * @param order - One of ORDER_NONE, the default, which keeps the order
+     * returned by the platform; ORDER_NATURAL, which compares names case
+     * insensitively and runs of digits by numeric value, so "img2" comes before
+     * "img10"; ORDER_COLLATED, which compares names using the Collator set by
+     * setCollator(); or ORDER_MTIME, which orders by modification time, oldest
+     * first.
+     */
+    public void setOrder(int order) {
+      checkOrder(order);
+      this.order = order;
+    }
+
+    // Get the order set by setOrder().
+    public int getOrder() {
+      return order;
+    }
+
+    /**
+     * Set the Collator used by ORDER_COLLATED, e.g. Collator.getInstance(locale)
+     * for a locale other than the default. The Collator is copied, so later
+     * changes to it have no effect on this Selection.
+     */
+    public void setCollator(Collator collator) {
+      if (collator == null)
+        throw new NullPointerException("collator must not be null");
+      this.collator = (Collator)collator.clone();
+      sorted[ORDER_COLLATED] = null;
+    }
+
+    private File[] sorted(int order) {
+      if (sorted[order] == null) {
+        if (files.length < 2)
+          sorted[order] = files;
+        else if (order == ORDER_COLLATED && collator == null)
+          sorted[order] = sortFiles(files, order, Collator.getInstance());
+        else
+          sorted[order] = sortFiles(files, order, collator);
+      }
+      return sorted[order];
+    }
+
+    // Cancel background readahead, if any is in progress.
+    public void cancelReadahead() {
+      if (readahead != null)
+        readahead.cancel();
+    }
+
+    /**
+     * Map the i-th selected file read-only into memory, allowing the caller to
+     * read it without copying. The mapping remains valid after the file channel
+     * used to create it is closed.
+     * @param i - an index into the array returned by getFiles().
+     */
+    public MappedByteBuffer mapFile(int i) throws IOException {
+      return mapFile(i, 0, -1);
+    }
+
+    /**
+     * Map a region of the i-th selected file read-only into memory.
+     * @param i - an index into the array returned by getFiles().
+     * @param offset - the position within the file at which the region starts,
+     * which must not be beyond the end of the file.
+     * @param length - the size of the region, or -1 to map to the end of file.
+     * The region must lie within the file and be at most Integer.MAX_VALUE
+     * bytes long.
+     */
+    public MappedByteBuffer mapFile(int i, long offset, long length) throws IOException {
+      File file = sorted(order)[i];
+      try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        long size = ch.size();
+        if (offset < 0 || offset > size)
+          throw new IllegalArgumentException("offset " + offset
+              + " is outside of " + file + " (" + size + " bytes)");
+        if (length < 0)
+          length = size - offset;
+        if (length > size - offset)
+          throw new IllegalArgumentException("region of " + length + " bytes at offset "
+              + offset + " extends beyond end of " + file + " (" + size + " bytes)");
+        if (length > Integer.MAX_VALUE)
+          throw new IllegalArgumentException("region of " + length
+              + " bytes is too large to map, use a smaller length");
+        return ch.map(FileChannel.MapMode.READ_ONLY, offset, length);
+      }
+    }
+
+  } // end of Selection
+
+  /**
+   * Readahead reads a list of files in the background, so their contents are
+   * cached by the OS. Worker threads claim files in order and read them in
+   * chunks, stopping when the shared byte budget is used up or on cancellation.
+   * Readahead holds no reference to the Selection that owns it, so the
+   * Selection can become unreachable, and readahead cancelled, while it runs.
+   */
+  private static final class Readahead implements Runnable
+  {
+    private static final int CHUNK = 64 * 1024;
+
+    private final File[] files;
+    private final AtomicLong budget;
+    private final AtomicInteger next = new AtomicInteger();
+    private final int threads;
+    private volatile boolean cancelled;
+
+    private Readahead(File[] files, long budget, int threads) {
+      this.files = files;
+      this.budget = new AtomicLong(budget);
+      this.threads = Math.min(threads, files.length);
+    }
+
+    private void start() {
+      for (int i = 0; i < threads; i++) {
+        Thread t = new Thread(this, "XFileDialog-readahead-" + i);
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+      }
+    }
+
+    private void cancel() {
+      cancelled = true;
+    }
+
+    // Reserve up to n bytes of the remaining budget, returning the amount
+    // actually reserved.
+    private long reserve(long n) {
+      while (true) {
+        long avail = budget.get();
+        long take = Math.min(n, avail);
+        if (take <= 0 || budget.compareAndSet(avail, avail - take))
+          return Math.max(take, 0);
+      }
+    }
+
+    @Override
+    public void run() {
+      ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK);
+      int i;
+      while (!cancelled && (i = next.getAndIncrement()) < files.length) {
+        try (FileChannel ch = FileChannel.open(files[i].toPath(), StandardOpenOption.READ)) {
+          long size = ch.size();
+          if (size == 0)
+            continue;
+          long n = reserve(size);
+          if (n == 0)
+            return;
+          trace(3, "Reading ahead " + n + " bytes of " + files[i]);
+          long pos = 0;
+          while (!cancelled && pos < n) {
+            buf.clear();
+            if (n - pos < CHUNK)
+              buf.limit((int)(n - pos));
+            int r = ch.read(buf, pos);
+            if (r < 0)
+              break;
+            pos += r;
+          }
+        } catch (IOException e) {
+          trace(2, "Readahead failed for " + files[i] + ": " + e.getMessage());
+        }
+      }
+    }
+  }
+
   /**
    * MultiFilter implements filtering using a list of filters to do the actual
-   * work. This is needed for platforms that only accept a single filter.
+   * work. This is needed for platforms that only accept a single filter. When
+   * archive browsing is enabled, ZIP and JAR archives are always accepted so
+   * the user can step into them.
    */
   private static final class MultiFilter implements FilenameFilter
   {
     private FilenameFilter[] filters;
-    private MultiFilter(FilenameFilter[] f) { filters = f; }
+    private boolean archives;
+    private MultiFilter(FilenameFilter[] f, boolean archives) {
+      filters = f;
+      this.archives = archives;
+    }
     @Override
     public boolean accept(File dir, String name) {
+      if (archives && name != null && ArchiveIndex.isArchiveName(name))
+        return true;
       for (FilenameFilter f : filters) {
         if (f.accept(dir, name))
           return true;
@@ -0,0 +1,132 @@
+package net.tomahawk;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+
+/**
+ * AllocationTest checks that frequently called XFileDialog operations stay
+ * within their allocation budgets. It runs headless, measures the bytes
+ * allocated per operation by the current thread using ThreadMXBean, and exits
+ * with a non-zero status if any operation goes over its budget.
+ *
+ * Budgets are in bytes per operation, with some headroom over what a 64-bit
+ * HotSpot JVM with compressed pointers actually allocates, so they fail on
+ * regressions such as extra temporary strings or copies, not on JVM noise.
+ *
+ * Usage: java -cp src_java;test net.tomahawk.AllocationTest
+ */
+public class AllocationTest
+{
+  // Filter.accept(dir, name) for a name that matches: nothing.
+  static final long ACCEPT_MATCH_BUDGET = 0;
+
+  // Filter.accept(dir, name) for a name that doesn't match: one File and its
+  // path string, to check whether the name is a directory.
+  static final long ACCEPT_MISS_BUDGET = 160;
+
+  // Filter.getWindowsDescription(): one builder and the result string.
+  static final long FILTER_DESCRIPTION_BUDGET = 400;
+
+  // ExtensionBasedFilter.getWindowsDescription(filters) for two filters: one
+  // builder and the result string, plus each filter's own description.
+  static final long LIST_DESCRIPTION_BUDGET = 1400;
+
+  // getFilenameFilters() with no filters: nothing.
+  static final long NO_FILTERS_BUDGET = 0;
+
+  // getFilenameFilters() with three filters: one array.
+  static final long FILTERS_BUDGET = 48;
+
+  // getFiles() with no result: nothing.
+  static final long NO_FILES_BUDGET = 0;
+
+  // getFiles() with ten results: one array.
+  static final long FILES_BUDGET = 72;
+
+  private static final int WARMUP = 50000;
+  private static final int ITERATIONS = 10000;
+
+  private static com.sun.management.ThreadMXBean threads;
+  private static int failures;
+  private static Object sink; // keeps results alive
+
+  private interface Op {
+    Object run();
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("java.awt.headless", "true");
+    java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    if (!(mx instanceof com.sun.management.ThreadMXBean)
+        || !((com.sun.management.ThreadMXBean)mx).isThreadAllocatedMemorySupported()) {
+      System.out.println("AllocationTest: allocation measurement not supported, skipping");
+      return;
+    }
+    threads = (com.sun.management.ThreadMXBean)mx;
+    threads.setThreadAllocatedMemoryEnabled(true);
+
+    File dir = new File(System.getProperty("java.io.tmpdir"));
+    XFileDialog.Filter images = new XFileDialog.Filter("Image Files", "png", "JPG", "Jpeg");
+    XFileDialog.Filter all = new XFileDialog.Filter("All Files", "*");
+    FilenameFilter[] list = { images, all };
+
+    check("Filter.accept (match)", ACCEPT_MATCH_BUDGET,
+        () -> images.accept(dir, "holiday-photo.jpeg"));
+    check("Filter.accept (no match)", ACCEPT_MISS_BUDGET,
+        () -> images.accept(dir, "no-such-file.txt"));
+    check("Filter.getWindowsDescription", FILTER_DESCRIPTION_BUDGET,
+        () -> images.getWindowsDescription());
+    check("ExtensionBasedFilter.getWindowsDescription", LIST_DESCRIPTION_BUDGET,
+        () -> XFileDialog.ExtensionBasedFilter.getWindowsDescription(list));
+
+    XFileDialog empty = new XFileDialog(null);
+    check("getFilenameFilters (none)", NO_FILTERS_BUDGET,
+        () -> empty.getFilenameFilters());
+    check("getFiles (none)", NO_FILES_BUDGET,
+        () -> empty.getFiles());
+
+    XFileDialog dlg = new XFileDialog(null);
+    dlg.addFilenameFilter(images);
+    dlg.addFilenameFilter(all);
+    dlg.addFilenameFilter((d, n) -> true);
+    File[] results = new File[10];
+    for (int i = 0; i < results.length; i++)
+      results[i] = new File(dir, "result" + i + ".png");
+    Field f = XFileDialog.class.getDeclaredField("resultFiles");
+    f.setAccessible(true);
+    f.set(dlg, results);
+    check("getFilenameFilters (3 filters)", FILTERS_BUDGET,
+        () -> dlg.getFilenameFilters());
+    check("getFiles (10 results)", FILES_BUDGET,
+        () -> dlg.getFiles());
+
+    if (failures > 0) {
+      System.out.println("AllocationTest: " + failures + " operation(s) over budget");
+      System.exit(1);
+    }
+    System.out.println("AllocationTest: all operations within budget");
+  }
+
+  // Warm up op so it is compiled, then measure the average bytes allocated
+  // per call and compare against the budget.
+  private static void check(String name, long budget, Op op) {
+    for (int i = 0; i < WARMUP; i++)
+      sink = op.run();
+    long tid = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(tid);
+    for (int i = 0; i < ITERATIONS; i++)
+      sink = op.run();
+    long after = threads.getThreadAllocatedBytes(tid);
+    // The two measurement calls themselves allocate a little; round down so
+    // that small fixed overhead amortized over all iterations is ignored.
+    long perOp = (after - before) / ITERATIONS;
+    boolean ok = perOp <= budget;
+    if (!ok)
+      failures++;
+    System.out.printf("%-4s %-45s %6d bytes/op (budget %d)%n",
+        ok ? "ok" : "FAIL", name, perOp, budget);
+  }
+
+}